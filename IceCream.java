@@ -1,7 +1,27 @@
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 // Enum representing different seasons
 enum Season {
@@ -242,6 +262,10 @@ class SpecialPackagingDecorator implements IceCreamDecorator {
 // Observer interface to be implemented by observers (users)
 interface OrderObserver {
     void update(Order order);
+
+    // Called when reserving stock for an order drops an item to the low-stock threshold
+    default void onLowStock(Order order, LowStockAlert alert) {
+    }
 }
 
 // State interface representing different states of an order
@@ -253,6 +277,11 @@ interface OrderState {
 class PlacedState implements OrderState {
     @Override
     public void process(Order order) {
+        // Stock is held for the order until it is prepared or cancelled
+        if (!order.reserveStock()) {
+            order.cancel("out of stock");
+            return;
+        }
         order.setStatus("Order Placed");
         order.notifyObservers();
     }
@@ -262,6 +291,10 @@ class PlacedState implements OrderState {
 class InPreparationState implements OrderState {
     @Override
     public void process(Order order) {
+        if (!order.commitStock()) {
+            order.cancel("stock reservation expired");
+            return;
+        }
         order.setStatus("Ice Cream preparation in process.......");
         order.notifyObservers();
     }
@@ -285,6 +318,22 @@ class DeliveredState implements OrderState {
     }
 }
 
+// Concrete State class representing the "Cancelled" state
+class CancelledState implements OrderState {
+    private String reason;
+
+    public CancelledState(String reason) {
+        this.reason = reason;
+    }
+
+    @Override
+    public void process(Order order) {
+        order.releaseStock();
+        order.setStatus("Order Cancelled: " + reason);
+        order.notifyObservers();
+    }
+}
+
 // Subject interface representing an observable subject
 interface OrderSubject {
     void registerObserver(OrderObserver observer);
@@ -317,13 +366,18 @@ class Order implements OrderSubject {
     private DeliveryMethod deliveryMethod;
     private Pickup pickup;  // Pickup details
     private String deliveryAddress;
+    private String store;  // Store that fulfils the order
     private List<OrderObserver> observers;
     private OrderState currentState;
+    private List<IceCreamCombination> iceCreams;
+    private Inventory inventory;  // Optional, stock is only checked when set
+    private InventoryReservation reservation;
 
     public Order(DeliveryMethod deliveryMethod) {
         this.status = "";
         this.order = new ArrayList<>();
         this.observers = new ArrayList<>();
+        this.iceCreams = new ArrayList<>();
         this.currentState = new PlacedState(); // Initial state is "Placed"
         this.deliveryMethod = deliveryMethod;
 
@@ -337,6 +391,11 @@ class Order implements OrderSubject {
         
     }
 
+    public void addItem(IceCreamCombination iceCream) {
+        this.iceCreams.add(iceCream);
+        this.order.add(iceCream.getName());
+    }
+
     public String getStatus() {
         return status;
     }
@@ -358,11 +417,67 @@ class Order implements OrderSubject {
         this.pickup = new Pickup(pickupLocation);
     }
 
+    public void setStore(String store) {
+        this.store = store;
+    }
+
+    public String getStore() {
+        return store;
+    }
+
+    // Key used to route the order to the partition that owns its store
+    public String getStoreKey() {
+        if (store != null) {
+            return store;
+        }
+        if (pickup != null) {
+            return pickup.getPickupLocation();
+        }
+        throw new IllegalStateException("Order has no store or pickup location");
+    }
+
+    public void setInventory(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    public boolean reserveStock() {
+        if (inventory == null || reservation != null) {
+            return true;
+        }
+        reservation = inventory.reserve(iceCreams);
+        if (reservation == null) {
+            return false;
+        }
+        for (LowStockAlert alert : reservation.getLowStockAlerts()) {
+            notifyLowStock(alert);
+        }
+        return true;
+    }
+
+    public boolean commitStock() {
+        return reservation == null || inventory.commit(reservation);
+    }
+
+    public void releaseStock() {
+        if (reservation != null) {
+            inventory.release(reservation);
+        }
+    }
+
+    public void cancel(String reason) {
+        currentState = new CancelledState(reason);
+        currentState.process(this);
+    }
+
     public void processOrder() {
         currentState.process(this);
     }
 
     public void nextState() {
+        // Cancelled orders do not move on
+        if (currentState instanceof CancelledState) {
+            return;
+        }
         // Transition to the next state
         if (currentState instanceof PlacedState) {
             currentState = getNextStateForDeliveryMethod();
@@ -393,6 +508,11 @@ class Order implements OrderSubject {
     class ReadyForPickupState implements OrderState {
     @Override
     public void process(Order order) {
+        // Pickup orders skip preparation, so stock is committed here
+        if (!order.commitStock()) {
+            order.cancel("stock reservation expired");
+            return;
+        }
         order.setStatus("Ready for Pickup");
         order.notifyObservers();
     }
@@ -426,6 +546,541 @@ class Order implements OrderSubject {
             observer.update(this);
         }
     }
+
+    public void notifyLowStock(LowStockAlert alert) {
+        for (OrderObserver observer : observers) {
+            observer.onLowStock(this, alert);
+        }
+    }
+}
+
+// Class representing an item whose stock dropped to the low-stock threshold
+class LowStockAlert {
+    private Enum<?> item;
+    private int remaining;
+
+    public LowStockAlert(Enum<?> item, int remaining) {
+        this.item = item;
+        this.remaining = remaining;
+    }
+
+    public Enum<?> getItem() {
+        return item;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    @Override
+    public String toString() {
+        return item + " (" + remaining + " left)";
+    }
+}
+
+// Stock held for one order, counted per flavor, topping and syrup ordinal
+class InventoryReservation {
+    private static final int HELD = 0;
+    private static final int COMMITTED = 1;
+    private static final int RELEASED = 2;
+
+    final int[] flavors;
+    final int[] toppings;
+    final int[] syrups;
+    private final long expiresAt;
+    private final AtomicInteger state;
+    private final List<LowStockAlert> lowStockAlerts;
+
+    InventoryReservation(int[] flavors, int[] toppings, int[] syrups, long expiresAt, List<LowStockAlert> lowStockAlerts) {
+        this.flavors = flavors;
+        this.toppings = toppings;
+        this.syrups = syrups;
+        this.expiresAt = expiresAt;
+        this.state = new AtomicInteger(HELD);
+        this.lowStockAlerts = lowStockAlerts;
+    }
+
+    public List<LowStockAlert> getLowStockAlerts() {
+        return lowStockAlerts;
+    }
+
+    public boolean isExpired(long now) {
+        return now > expiresAt;
+    }
+
+    // Each reservation is committed or released exactly once, even if a commit races a timeout
+    boolean markCommitted() {
+        return state.compareAndSet(HELD, COMMITTED);
+    }
+
+    boolean markReleased() {
+        return state.compareAndSet(HELD, RELEASED);
+    }
+}
+
+// Stock of flavors, toppings and syrups. Counters are indexed by enum ordinal and updated with
+// compare-and-set, so concurrent orders can never take more units than are in stock.
+class Inventory {
+    private final StockCounters flavorStock;
+    private final StockCounters toppingStock;
+    private final StockCounters syrupStock;
+    private final int lowStockThreshold;
+    private final long reservationTimeoutMillis;
+    private final Set<InventoryReservation> heldReservations;
+    private ScheduledExecutorService expirySweeper;
+
+    // One word per enum ordinal, so stock, pending units and the alert flag always change in a single CAS:
+    // bits 32-63 units in stock, bits 1-31 units taken by reservations still in progress,
+    // bit 0 set once a low-stock alert is out for the current dip
+    private static class StockCounters {
+        final Enum<?>[] items;
+        final AtomicLongArray words;
+
+        StockCounters(Enum<?>[] items) {
+            this.items = items;
+            this.words = new AtomicLongArray(items.length);
+        }
+
+        static int available(long word) {
+            return (int) (word >>> 32);
+        }
+
+        static int pending(long word) {
+            return (int) ((word >>> 1) & 0x7fffffffL);
+        }
+
+        static boolean alertRaised(long word) {
+            return (word & 1L) != 0;
+        }
+
+        static long pack(int available, int pending, boolean alertRaised) {
+            return ((long) available << 32) | ((long) pending << 1) | (alertRaised ? 1L : 0L);
+        }
+    }
+
+    public Inventory(int lowStockThreshold, long reservationTimeoutMillis) {
+        this.flavorStock = new StockCounters(IceCreamFlavor.values());
+        this.toppingStock = new StockCounters(Topping.values());
+        this.syrupStock = new StockCounters(Syrup.values());
+        this.lowStockThreshold = lowStockThreshold;
+        this.reservationTimeoutMillis = reservationTimeoutMillis;
+        this.heldReservations = ConcurrentHashMap.newKeySet();
+    }
+
+    public void addStock(IceCreamFlavor flavor, int units) {
+        put(flavorStock, flavor.ordinal(), requireNonNegative(units));
+    }
+
+    public void addStock(Topping topping, int units) {
+        put(toppingStock, topping.ordinal(), requireNonNegative(units));
+    }
+
+    public void addStock(Syrup syrup, int units) {
+        put(syrupStock, syrup.ordinal(), requireNonNegative(units));
+    }
+
+    public int getStock(IceCreamFlavor flavor) {
+        return StockCounters.available(flavorStock.words.get(flavor.ordinal()));
+    }
+
+    public int getStock(Topping topping) {
+        return StockCounters.available(toppingStock.words.get(topping.ordinal()));
+    }
+
+    public int getStock(Syrup syrup) {
+        return StockCounters.available(syrupStock.words.get(syrup.ordinal()));
+    }
+
+    // Reserves every unit the ice creams need, or nothing at all. Returns null when out of stock.
+    public InventoryReservation reserve(List<IceCreamCombination> iceCreams) {
+        int[] flavors = new int[flavorStock.items.length];
+        int[] toppings = new int[toppingStock.items.length];
+        int[] syrups = new int[syrupStock.items.length];
+        for (IceCreamCombination iceCream : iceCreams) {
+            flavors[iceCream.getFlavor().ordinal()]++;
+            for (Topping topping : iceCream.toppings) {
+                toppings[topping.ordinal()]++;
+            }
+            for (Syrup syrup : iceCream.syrups) {
+                syrups[syrup.ordinal()]++;
+            }
+        }
+
+        // Items are always taken in the same order (flavors, toppings, syrups, each by ordinal),
+        // so reservations waiting on each other's pending units can never form a cycle
+        if (!take(flavorStock, flavors)) {
+            return null;
+        }
+        if (!take(toppingStock, toppings)) {
+            rollBackAll(flavorStock, flavors);
+            return null;
+        }
+        if (!take(syrupStock, syrups)) {
+            rollBackAll(flavorStock, flavors);
+            rollBackAll(toppingStock, toppings);
+            return null;
+        }
+
+        List<LowStockAlert> lowStockAlerts = new ArrayList<>();
+        confirmAll(flavorStock, flavors, lowStockAlerts);
+        confirmAll(toppingStock, toppings, lowStockAlerts);
+        confirmAll(syrupStock, syrups, lowStockAlerts);
+
+        InventoryReservation reservation = new InventoryReservation(flavors, toppings, syrups,
+                System.currentTimeMillis() + reservationTimeoutMillis, lowStockAlerts);
+        heldReservations.add(reservation);
+        return reservation;
+    }
+
+    // Reserved units are already out of stock, committing only stops them from being returned.
+    // A reservation past its timeout is released instead and cannot be committed.
+    public boolean commit(InventoryReservation reservation) {
+        if (reservation.isExpired(System.currentTimeMillis())) {
+            release(reservation);
+            return false;
+        }
+        if (!reservation.markCommitted()) {
+            return false;
+        }
+        heldReservations.remove(reservation);
+        return true;
+    }
+
+    public boolean release(InventoryReservation reservation) {
+        if (!reservation.markReleased()) {
+            return false;
+        }
+        heldReservations.remove(reservation);
+        putAll(flavorStock, reservation.flavors);
+        putAll(toppingStock, reservation.toppings);
+        putAll(syrupStock, reservation.syrups);
+        return true;
+    }
+
+    // Returns stock held by reservations past their timeout
+    public int releaseExpired() {
+        long now = System.currentTimeMillis();
+        int released = 0;
+        for (InventoryReservation reservation : heldReservations) {
+            if (reservation.isExpired(now) && release(reservation)) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    // Runs releaseExpired in the background until shutdown is called
+    public synchronized void startExpirySweeper(long periodMillis) {
+        if (expirySweeper != null) {
+            throw new IllegalStateException("Expiry sweeper already running");
+        }
+        expirySweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expirySweeper.scheduleAtFixedRate(this::releaseExpired, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (expirySweeper != null) {
+            expirySweeper.shutdown();
+            expirySweeper = null;
+        }
+    }
+
+    // Moves units from stock to pending. A shortfall only counts as out of stock when the units
+    // pending in other reservations could not cover it either; otherwise those reservations may
+    // still roll back, so wait for them instead of turning the order away.
+    private boolean take(StockCounters stock, int[] units) {
+        for (int ordinal = 0; ordinal < units.length; ordinal++) {
+            int needed = units[ordinal];
+            if (needed == 0) {
+                continue;
+            }
+            while (true) {
+                long word = stock.words.get(ordinal);
+                int available = StockCounters.available(word);
+                int pending = StockCounters.pending(word);
+                if (available >= needed) {
+                    long taken = StockCounters.pack(available - needed, pending + needed, StockCounters.alertRaised(word));
+                    if (stock.words.compareAndSet(ordinal, word, taken)) {
+                        break;
+                    }
+                } else if ((long) available + pending >= needed) {
+                    Thread.yield();  // Let the reservation holding the units finish or roll back
+                } else {
+                    // Undo the items taken so far in this call
+                    for (int taken = 0; taken < ordinal; taken++) {
+                        if (units[taken] != 0) {
+                            rollBack(stock, taken, units[taken]);
+                        }
+                    }
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Settles pending units as reserved, raising the alert if this leaves the item at or below the threshold
+    private void confirmAll(StockCounters stock, int[] units, List<LowStockAlert> lowStockAlerts) {
+        for (int ordinal = 0; ordinal < units.length; ordinal++) {
+            if (units[ordinal] == 0) {
+                continue;
+            }
+            while (true) {
+                long word = stock.words.get(ordinal);
+                int available = StockCounters.available(word);
+                boolean raise = available <= lowStockThreshold && !StockCounters.alertRaised(word);
+                long confirmed = StockCounters.pack(available, StockCounters.pending(word) - units[ordinal],
+                        StockCounters.alertRaised(word) || raise);
+                if (stock.words.compareAndSet(ordinal, word, confirmed)) {
+                    if (raise) {
+                        lowStockAlerts.add(new LowStockAlert(stock.items[ordinal], available));
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private void rollBackAll(StockCounters stock, int[] units) {
+        for (int ordinal = 0; ordinal < units.length; ordinal++) {
+            if (units[ordinal] != 0) {
+                rollBack(stock, ordinal, units[ordinal]);
+            }
+        }
+    }
+
+    private void rollBack(StockCounters stock, int ordinal, int units) {
+        update(stock, ordinal, units, -units);
+    }
+
+    private void putAll(StockCounters stock, int[] units) {
+        for (int ordinal = 0; ordinal < units.length; ordinal++) {
+            if (units[ordinal] != 0) {
+                put(stock, ordinal, units[ordinal]);
+            }
+        }
+    }
+
+    private void put(StockCounters stock, int ordinal, int units) {
+        update(stock, ordinal, units, 0);
+    }
+
+    // Adds units back to stock; back above the threshold, the alert flag clears so the next dip raises a fresh one
+    private void update(StockCounters stock, int ordinal, int availableDelta, int pendingDelta) {
+        while (true) {
+            long word = stock.words.get(ordinal);
+            int available = Math.addExact(StockCounters.available(word), availableDelta);
+            boolean alertRaised = StockCounters.alertRaised(word) && available <= lowStockThreshold;
+            long updated = StockCounters.pack(available, StockCounters.pending(word) + pendingDelta, alertRaised);
+            if (stock.words.compareAndSet(ordinal, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    private static int requireNonNegative(int units) {
+        if (units < 0) {
+            throw new IllegalArgumentException("Stock units must not be negative: " + units);
+        }
+        return units;
+    }
+}
+
+// Consistent hash ring mapping keys to nodes, with virtual nodes for an even spread
+class ConsistentHashRing<T> {
+    private final TreeMap<Long, T> ring;
+    private final int virtualNodes;
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.ring = new TreeMap<>();
+        this.virtualNodes = virtualNodes;
+    }
+
+    public ConsistentHashRing(ConsistentHashRing<T> other) {
+        this.ring = new TreeMap<>(other.ring);
+        this.virtualNodes = other.virtualNodes;
+    }
+
+    public void add(String nodeId, T node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(virtualNodeHash(nodeId, i), node);
+        }
+    }
+
+    public T get(String key) {
+        return ownerAt(hash(key));
+    }
+
+    // Nodes that would give keys away if nodeId joined: the successors of its virtual nodes
+    public Set<T> successorsOf(String nodeId) {
+        Set<T> successors = new LinkedHashSet<>();
+        if (!ring.isEmpty()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                successors.add(ownerAt(virtualNodeHash(nodeId, i)));
+            }
+        }
+        return successors;
+    }
+
+    private T ownerAt(long position) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No nodes in the ring");
+        }
+        // The owner is the first node clockwise from the position
+        Map.Entry<Long, T> owner = ring.ceilingEntry(position);
+        return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+    }
+
+    private static long virtualNodeHash(String nodeId, int index) {
+        return hash(nodeId + "#" + index);
+    }
+
+    // 64-bit FNV-1a followed by a finalizer so similar store names land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+// A partition owning a set of stores; a single thread processes all of its orders in submission order.
+// Orders reach it only through StoreCluster.
+class OrderPartition {
+    private final String nodeId;
+    private final ExecutorService orderLoop;
+    private final ReentrantReadWriteLock intakeLock;  // Closed only while this partition hands stores off
+
+    public OrderPartition(String nodeId) {
+        this.nodeId = nodeId;
+        this.orderLoop = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "order-partition-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.intakeLock = new ReentrantReadWriteLock();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Queues the order, or returns null if the partition no longer owns it by the time intake is open
+    Future<?> submit(Order order, Consumer<Order> action, BooleanSupplier stillOwner) {
+        intakeLock.readLock().lock();
+        try {
+            if (!stillOwner.getAsBoolean()) {
+                return null;
+            }
+            return orderLoop.submit(() -> action.accept(order));
+        } finally {
+            intakeLock.readLock().unlock();
+        }
+    }
+
+    void closeIntake() {
+        intakeLock.writeLock().lock();
+    }
+
+    void openIntake() {
+        intakeLock.writeLock().unlock();
+    }
+
+    // Completes once every order queued so far has been processed
+    CompletableFuture<Void> fence() {
+        CompletableFuture<Void> fence = new CompletableFuture<>();
+        orderLoop.execute(() -> fence.complete(null));
+        return fence;
+    }
+
+    // Holds back every later order until the handoff completes
+    void waitFor(CompletableFuture<Void> handoff) {
+        orderLoop.execute(handoff::join);
+    }
+
+    void shutdown() {
+        orderLoop.shutdown();
+    }
+}
+
+// In-process stand-in for a multi-node cluster, routing orders to partitions by store
+class StoreCluster {
+    private static final int VIRTUAL_NODES = 64;
+
+    private final Map<String, OrderPartition> partitions;
+    private volatile ConsistentHashRing<OrderPartition> ring;
+
+    public StoreCluster() {
+        this.partitions = new LinkedHashMap<>();
+        this.ring = new ConsistentHashRing<>(VIRTUAL_NODES);
+    }
+
+    // Adds a node and hands it the stores it now owns. Only partitions that give stores away pause their
+    // intake, and only while the new ring is published; their queued orders finish before the new node
+    // processes orders of the moved stores. Actions may submit follow-up orders but must not wait on them.
+    public synchronized void addNode(String nodeId) {
+        if (partitions.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node already in cluster: " + nodeId);
+        }
+        OrderPartition partition = new OrderPartition(nodeId);
+        CompletableFuture<Void> handoff = new CompletableFuture<>();
+        partition.waitFor(handoff);
+
+        Set<OrderPartition> losing = ring.successorsOf(nodeId);
+        ConsistentHashRing<OrderPartition> rebalanced = new ConsistentHashRing<>(ring);
+        rebalanced.add(nodeId, partition);
+
+        List<CompletableFuture<Void>> fences = new ArrayList<>();
+        for (OrderPartition owner : losing) {
+            owner.closeIntake();
+        }
+        try {
+            ring = rebalanced;
+            for (OrderPartition owner : losing) {
+                fences.add(owner.fence());
+            }
+        } finally {
+            for (OrderPartition owner : losing) {
+                owner.openIntake();
+            }
+        }
+        CompletableFuture.allOf(fences.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignored, error) -> handoff.complete(null));
+        partitions.put(nodeId, partition);
+    }
+
+    // Id of the node that currently owns the store
+    public String ownerOf(String store) {
+        return ring.get(store).getNodeId();
+    }
+
+    public Future<?> submit(Order order, Consumer<Order> action) {
+        String store = order.getStoreKey();
+        while (true) {
+            ConsistentHashRing<OrderPartition> routing = ring;
+            OrderPartition owner = routing.get(store);
+            // A rebalance between lookup and intake may have moved the store; look it up again then
+            Future<?> queued = owner.submit(order, action, () -> ring == routing || ring.get(store) == owner);
+            if (queued != null) {
+                return queued;
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        for (OrderPartition partition : partitions.values()) {
+            partition.shutdown();
+        }
+    }
 }
 
 // Concrete Observer class representing a user
@@ -453,9 +1108,29 @@ class User implements OrderObserver {
     }
 }
 
+// Concrete Observer class representing a store manager who restocks
+class StoreManager implements OrderObserver {
+    private String name;
+
+    public StoreManager(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void update(Order order) {
+        // Store managers only follow stock levels
+    }
+
+    @Override
+    public void onLowStock(Order order, LowStockAlert alert) {
+        System.out.println("Hello " + name + "! Low stock: " + alert);
+    }
+}
+
 // PaymentStrategy interface
 interface PaymentStrategy {
     void pay(double amount);
+    String getPaymentInstrument();  // Identifies the card, wallet etc. that is charged
 }
 
 // Concrete payment strategies
@@ -477,6 +1152,11 @@ class CreditCardPayment implements PaymentStrategy {
         // Implement credit card payment logic
         System.out.println("Paid " + amount + " with Credit Card");
     }
+
+    @Override
+    public String getPaymentInstrument() {
+        return "CreditCard:" + cardNumber;
+    }
 }
 
 class DigitalWalletPayment implements PaymentStrategy {
@@ -493,6 +1173,11 @@ class DigitalWalletPayment implements PaymentStrategy {
         // Implement digital wallet payment logic
         System.out.println("Paid " + amount + " with Digital Wallet");
     }
+
+    @Override
+    public String getPaymentInstrument() {
+        return "DigitalWallet:" + walletId;
+    }
 }
 
 class CashOnDelivery implements PaymentStrategy {
@@ -501,6 +1186,11 @@ class CashOnDelivery implements PaymentStrategy {
         // Implement cash on delivery payment logic
         System.out.println("Paid " + amount + " with Cash on Delivery");
     }
+
+    @Override
+    public String getPaymentInstrument() {
+        return "CashOnDelivery";
+    }
 }
 
 // LoyaltyProgram interface
@@ -514,14 +1204,14 @@ class SimpleLoyaltyProgram implements LoyaltyProgram {
     private Map<String, Double> pointsMap;
 
     public SimpleLoyaltyProgram() {
-        this.pointsMap = new HashMap<>();
+        this.pointsMap = new ConcurrentHashMap<>();  // Shared by processors paying concurrently
     }
 
     @Override
     public void earnPoints(double amount) {
         // Assume 1 point for every LKR 10 spent
         double pointsEarned = amount / 100.0;
-        pointsMap.put("Anbu", pointsMap.getOrDefault("Anbu", 0.0) + pointsEarned);
+        pointsMap.merge("Anbu", pointsEarned, Double::sum);
     }
 
     @Override
@@ -552,16 +1242,173 @@ class FeedbackCommand implements PaymentCommand {
     }
 }
 
+// Class representing the result of a processed payment
+class PaymentReceipt {
+    private String idempotencyKey;
+    private double amount;
+    private String paymentInstrument;
+    private long processedAt;
+
+    public PaymentReceipt(String idempotencyKey, double amount, String paymentInstrument, long processedAt) {
+        this.idempotencyKey = idempotencyKey;
+        this.amount = amount;
+        this.paymentInstrument = paymentInstrument;
+        this.processedAt = processedAt;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public String getPaymentInstrument() {
+        return paymentInstrument;
+    }
+
+    public long getProcessedAt() {
+        return processedAt;
+    }
+}
+
+// Bounded, time-expiring cache of payment results keyed by idempotency key.
+// Concurrent requests with the same key share one in-flight payment.
+class IdempotencyCache {
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final ConcurrentLinkedQueue<Entry> completed;  // Completed entries, oldest first
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private static class Entry {
+        final CompletableFuture<PaymentReceipt> result = new CompletableFuture<>();
+        final String key;
+        final double amount;
+        final String paymentInstrument;
+        final long createdAt;
+
+        Entry(String key, double amount, String paymentInstrument, long createdAt) {
+            this.key = key;
+            this.amount = amount;
+            this.paymentInstrument = paymentInstrument;
+            this.createdAt = createdAt;
+        }
+
+        boolean matches(double amount, String paymentInstrument) {
+            return Double.compare(this.amount, amount) == 0 && this.paymentInstrument.equals(paymentInstrument);
+        }
+    }
+
+    public IdempotencyCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("maxEntries and ttlMillis must be positive");
+        }
+        this.entries = new ConcurrentHashMap<>();
+        this.completed = new ConcurrentLinkedQueue<>();
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Returns the cached result for the key, or runs the payment exactly once and caches its result.
+    // Reusing a key for a different amount or payment instrument is rejected rather than answered with the old receipt.
+    public PaymentReceipt getOrCompute(String key, double amount, String paymentInstrument, Supplier<PaymentReceipt> payment) {
+        long now = System.currentTimeMillis();
+        Entry fresh = new Entry(key, amount, paymentInstrument, now);
+        Entry existing = entries.putIfAbsent(key, fresh);
+        // An expired entry is replaced atomically so only one caller re-runs the payment
+        while (existing != null && isExpired(existing, now)) {
+            if (entries.replace(key, existing, fresh)) {
+                existing = null;
+            } else {
+                existing = entries.putIfAbsent(key, fresh);
+            }
+        }
+
+        if (existing != null) {
+            if (!existing.matches(amount, paymentInstrument)) {
+                throw new IllegalArgumentException("Idempotency key " + key + " was already used for "
+                        + existing.amount + " with " + existing.paymentInstrument);
+            }
+            return await(existing);
+        }
+
+        PaymentReceipt receipt;
+        try {
+            receipt = payment.get();
+        } catch (Throwable t) {
+            // Failed payments are not cached so the client may retry, and waiting duplicates see the failure
+            entries.remove(key, fresh);
+            fresh.result.completeExceptionally(t);
+            throw t;
+        }
+        fresh.result.complete(receipt);
+        completed.add(fresh);
+        evict(now);
+        return receipt;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        // In-flight payments never expire, otherwise a duplicate could start a second charge
+        return entry.result.isDone() && now - entry.createdAt > ttlMillis;
+    }
+
+    // Drops completed entries from the head of the queue while the cache is over its bound,
+    // the head has expired, or the head was already replaced in the map
+    private void evict(long now) {
+        Entry oldest;
+        while ((oldest = completed.peek()) != null) {
+            boolean stale = entries.get(oldest.key) != oldest;
+            if (!stale && !isExpired(oldest, now) && entries.size() <= maxEntries) {
+                return;
+            }
+            // Only the thread that dequeues the head removes it, so a racing thread cannot evict a newer entry
+            if (completed.remove(oldest)) {
+                entries.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    private static PaymentReceipt await(Entry entry) {
+        try {
+            return entry.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
+
 // PaymentProcessor using the Strategy and Command patterns
 class PaymentProcessor {
+    private static final int DEFAULT_MAX_IDEMPOTENCY_KEYS = 10_000;
+    private static final long DEFAULT_IDEMPOTENCY_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
     private PaymentStrategy paymentStrategy;
     private LoyaltyProgram loyaltyProgram;
     private List<PaymentCommand> commandQueue;
+    private IdempotencyCache idempotencyCache;
 
     public PaymentProcessor(PaymentStrategy paymentStrategy, LoyaltyProgram loyaltyProgram) {
+        this(paymentStrategy, loyaltyProgram,
+                new IdempotencyCache(DEFAULT_MAX_IDEMPOTENCY_KEYS, DEFAULT_IDEMPOTENCY_TTL_MILLIS));
+    }
+
+    // Processors sharing a cache also share idempotency keys; reusing a key with another payment instrument is rejected
+    public PaymentProcessor(PaymentStrategy paymentStrategy, LoyaltyProgram loyaltyProgram, IdempotencyCache idempotencyCache) {
         this.paymentStrategy = paymentStrategy;
         this.loyaltyProgram = loyaltyProgram;
         this.commandQueue = new ArrayList<>();
+        this.idempotencyCache = idempotencyCache;
     }
 
     public void processPayment(double amount) {
@@ -572,6 +1419,15 @@ class PaymentProcessor {
         loyaltyProgram.earnPoints(amount);
     }
 
+    public PaymentReceipt processPayment(String idempotencyKey, double amount) {
+        String paymentInstrument = paymentStrategy.getPaymentInstrument();
+        // Payment and loyalty points run at most once per key; duplicates get the original receipt
+        return idempotencyCache.getOrCompute(idempotencyKey, amount, paymentInstrument, () -> {
+            processPayment(amount);
+            return new PaymentReceipt(idempotencyKey, amount, paymentInstrument, System.currentTimeMillis());
+        });
+    }
+
     public void queueCommand(PaymentCommand command) {
         // Queue a command for later execution
         commandQueue.add(command);
@@ -639,23 +1495,41 @@ public class IceCream {
         }
         System.out.println("------------------------------");
         
+        // Stocking the shop, alerting when 2 or fewer units are left
+        Inventory inventory = new Inventory(2, 15 * 60 * 1000L);
+        for (IceCreamFlavor flavor : IceCreamFlavor.values()) {
+            inventory.addStock(flavor, flavor == IceCreamFlavor.CHOCOLATE ? 3 : 10);
+        }
+        for (Topping topping : Topping.values()) {
+            inventory.addStock(topping, 10);
+        }
+        for (Syrup syrup : Syrup.values()) {
+            inventory.addStock(syrup, 10);
+        }
+        inventory.startExpirySweeper(60 * 1000L);
+
                 // Creating an order with delivery
         Order deliveryOrder = new Order(DeliveryMethod.DELIVERY);
-        deliveryOrder.addItem("Chocolate Caramel");
+        deliveryOrder.addItem(basicIceCream);
         deliveryOrder.setDeliveryAddress("Bambapitiya, Colombo");
+        deliveryOrder.setInventory(inventory);
 
         // Creating an order with pickup
         Order pickupOrder = new Order(DeliveryMethod.PICKUP);
-        pickupOrder.addItem("Chocolate Caramel");
+        pickupOrder.addItem(basicIceCream);
         pickupOrder.setPickupLocation("IceCreamShop");
+        pickupOrder.setInventory(inventory);
         
 
         // Creating users after the orders are submitted
         User user1 = new User("Anbu");
+        StoreManager manager = new StoreManager("Kajan");
 
         // Adding users as observers
         deliveryOrder.registerObserver(user1);
         pickupOrder.registerObserver(user1);
+        deliveryOrder.registerObserver(manager);
+        pickupOrder.registerObserver(manager);
 
         // Simulating the order process for delivery
         deliveryOrder.processOrder();
@@ -669,6 +1543,44 @@ public class IceCream {
         pickupOrder.processOrder();
         pickupOrder.nextState();
         System.out.println("------------------------------");
+
+        // Only one chocolate scoop is left, so this order is turned away
+        Order lateOrder = new Order(DeliveryMethod.PICKUP);
+        lateOrder.addItem(basicIceCream);
+        lateOrder.addItem(basicIceCream);
+        lateOrder.setPickupLocation("IceCreamShop");
+        lateOrder.setInventory(inventory);
+        lateOrder.registerObserver(user1);
+        lateOrder.processOrder();
+        System.out.println("Chocolate left: " + inventory.getStock(IceCreamFlavor.CHOCOLATE));
+        inventory.shutdown();
+        System.out.println("------------------------------");
+
+        // Routing orders for several stores across an in-process cluster
+        StoreCluster storeCluster = new StoreCluster();
+        storeCluster.addNode("node-1");
+        storeCluster.addNode("node-2");
+        String[] stores = {"IceCreamShop", "Kandy", "Galle", "Negombo"};
+        for (String store : stores) {
+            System.out.println("Store " + store + " owned by " + storeCluster.ownerOf(store));
+        }
+        storeCluster.addNode("node-3");
+        System.out.println("After adding node-3:");
+        for (String store : stores) {
+            System.out.println("Store " + store + " owned by " + storeCluster.ownerOf(store));
+        }
+        Order galleOrder = new Order(DeliveryMethod.DELIVERY);
+        galleOrder.addItem("Chocolate Caramel");
+        galleOrder.setStore("Galle");
+        galleOrder.setDeliveryAddress("Fort, Galle");
+        try {
+            storeCluster.submit(galleOrder, Order::processOrder).get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Order processing failed: " + e.getMessage());
+        }
+        System.out.println("Galle order status: " + galleOrder.getStatus());
+        storeCluster.shutdown();
+        System.out.println("------------------------------");
         
         // Create payment strategy (Cash on Delivery)
         PaymentStrategy creditCardPayment = new CreditCardPayment("1234-5678-9101-1121", "John Doe", "12/23", "123");
@@ -679,17 +1591,32 @@ public class IceCream {
         // Create loyalty program
         LoyaltyProgram loyaltyProgram = new SimpleLoyaltyProgram();
 
+        // Shared idempotency cache, so a key paid with one instrument is rejected on another
+        IdempotencyCache idempotencyCache = new IdempotencyCache(1000, 10 * 60 * 1000L);
+
         // Create PaymentProcessor instance with the cash on delivery strategy
-        PaymentProcessor creditCardProcessor = new PaymentProcessor(creditCardPayment, loyaltyProgram);
-        PaymentProcessor walletProcessor = new PaymentProcessor(walletPayment, loyaltyProgram);
-        PaymentProcessor codProcessor = new PaymentProcessor(codPayment, loyaltyProgram);
+        PaymentProcessor creditCardProcessor = new PaymentProcessor(creditCardPayment, loyaltyProgram, idempotencyCache);
+        PaymentProcessor walletProcessor = new PaymentProcessor(walletPayment, loyaltyProgram, idempotencyCache);
+        PaymentProcessor codProcessor = new PaymentProcessor(codPayment, loyaltyProgram, idempotencyCache);
 
-        // Process payment 
-        walletProcessor.processPayment(discountedPrice);
+        // Process payment for the order once
+        PaymentReceipt receipt = walletProcessor.processPayment("order-1001", discountedPrice);
         System.out.println("------------------------------");
-        creditCardProcessor.processPayment(discountedPrice);
+
+        // Client retries of the same payment are not charged again
+        for (int retry = 1; retry <= 2; retry++) {
+            if (walletProcessor.processPayment("order-1001", discountedPrice) == receipt) {
+                System.out.println("Retry " + retry + " of order-1001 returned the original receipt");
+            }
+        }
         System.out.println("------------------------------");
-        codProcessor.processPayment(discountedPrice);
+
+        // Paying the same order again with another instrument is rejected instead of charged twice
+        try {
+            creditCardProcessor.processPayment("order-1001", discountedPrice);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Payment rejected: " + e.getMessage());
+        }
         System.out.println("------------------------------");
 
         FeedbackCommand feedbackCommand = new FeedbackCommand(loyaltyProgram, "yummmy :)");
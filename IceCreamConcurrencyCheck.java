@@ -0,0 +1,399 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+
+// Concurrency checks for the shop, run with:
+//   javac IceCream.java IceCreamConcurrencyCheck.java && java IceCreamConcurrencyCheck
+public class IceCreamConcurrencyCheck {
+    private static final int THREADS = 16;
+
+    public static void main(String[] args) throws Exception {
+        checkDuplicatePaymentsAreCoalesced();
+        checkFailedPaymentCanBeRetried();
+        checkReusedKeyWithDifferentAmountIsRejected();
+        checkIdempotencyCacheStaysBounded();
+        checkAddingNodeOnlyMovesStoresToIt();
+        checkStoreIsNeverProcessedByTwoPartitions();
+        checkAddingNodeDoesNotWaitForBusyPartitions();
+        checkInventoryIsNeverOversold();
+        checkLowStockAlertSurvivesRollbacks();
+        checkExpiredReservationIsNotCommitted();
+        checkSweeperReturnsExpiredStock();
+        System.out.println("All concurrency checks passed");
+    }
+
+    // Many concurrent retries of one payment make a single gateway call and award points once
+    private static void checkDuplicatePaymentsAreCoalesced() throws Exception {
+        AtomicInteger gatewayCalls = new AtomicInteger();
+        PaymentStrategy slowGateway = new TestGateway("slow", amount -> {
+            gatewayCalls.incrementAndGet();
+            sleep(50);
+        });
+        PaymentProcessor processor = new PaymentProcessor(slowGateway, new SimpleLoyaltyProgram(), new IdempotencyCache(100, 60_000));
+
+        runConcurrently(64, () -> processor.processPayment("retry-storm", 500));
+
+        check(gatewayCalls.get() == 1, "expected 1 gateway call, got " + gatewayCalls.get());
+        check(processor.getEarnedPoints() == 5.0, "expected 5 loyalty points, got " + processor.getEarnedPoints());
+        System.out.println("Duplicate payments coalesced: OK");
+    }
+
+    // A payment that fails with an Error must not leave its key stuck in flight
+    private static void checkFailedPaymentCanBeRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        PaymentStrategy flakyGateway = new TestGateway("flaky", amount -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new AssertionError("gateway crashed");
+            }
+        });
+        PaymentProcessor processor = new PaymentProcessor(flakyGateway, new SimpleLoyaltyProgram());
+
+        try {
+            processor.processPayment("flaky", 100);
+            check(false, "expected the first attempt to fail");
+        } catch (AssertionError expected) {
+            // The retry below must go through instead of waiting forever
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PaymentReceipt receipt = executor.submit(() -> processor.processPayment("flaky", 100)).get(5, TimeUnit.SECONDS);
+            check(receipt.getAmount() == 100, "retry returned the wrong receipt");
+        } finally {
+            executor.shutdownNow();
+        }
+        check(attempts.get() == 2, "expected 2 gateway calls, got " + attempts.get());
+        System.out.println("Failed payment can be retried: OK");
+    }
+
+    private static void checkReusedKeyWithDifferentAmountIsRejected() {
+        IdempotencyCache cache = new IdempotencyCache(100, 60_000);
+        LoyaltyProgram loyaltyProgram = new SimpleLoyaltyProgram();
+        PaymentProcessor cardProcessor = new PaymentProcessor(
+                new CreditCardPayment("1111-2222-3333-4444", "John Doe", "12/27", "123"), loyaltyProgram, cache);
+        PaymentProcessor otherCardProcessor = new PaymentProcessor(
+                new CreditCardPayment("5555-6666-7777-8888", "John Doe", "12/27", "456"), loyaltyProgram, cache);
+        PaymentProcessor codProcessor = new PaymentProcessor(new CashOnDelivery(), loyaltyProgram, cache);
+        cardProcessor.processPayment("order-7", 250);
+
+        check(rejects(() -> cardProcessor.processPayment("order-7", 300)), "reusing a key with a different amount was accepted");
+        check(rejects(() -> otherCardProcessor.processPayment("order-7", 250)), "reusing a key with a different card was accepted");
+        check(rejects(() -> codProcessor.processPayment("order-7", 250)), "reusing a key with a different payment method was accepted");
+        System.out.println("Reused key with a different request rejected: OK");
+    }
+
+    private static boolean rejects(Runnable payment) {
+        try {
+            payment.run();
+            return false;
+        } catch (IllegalArgumentException expected) {
+            return true;
+        }
+    }
+
+    private static void checkIdempotencyCacheStaysBounded() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(50, 60_000);
+        PaymentProcessor processor = new PaymentProcessor(new TestGateway("fast", amount -> { }), new SimpleLoyaltyProgram(), cache);
+        AtomicInteger nextKey = new AtomicInteger();
+
+        runConcurrently(2_000, () -> processor.processPayment("key-" + nextKey.incrementAndGet(), 100));
+
+        check(cache.size() <= 50, "cache grew to " + cache.size() + " entries");
+        // Every distinct payment earns its point, even when they run concurrently
+        check(Math.abs(processor.getEarnedPoints() - 2_000) < 1e-6, "expected 2000 loyalty points, got " + processor.getEarnedPoints());
+        System.out.println("Idempotency cache stays bounded: OK");
+    }
+
+    // Consistent hashing: a new node only takes stores over, it never shuffles them between old nodes
+    private static void checkAddingNodeOnlyMovesStoresToIt() {
+        StoreCluster cluster = new StoreCluster();
+        cluster.addNode("node-1");
+        cluster.addNode("node-2");
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 1_000; i++) {
+            before.put("store-" + i, cluster.ownerOf("store-" + i));
+        }
+
+        cluster.addNode("node-3");
+        int moved = 0;
+        for (Map.Entry<String, String> store : before.entrySet()) {
+            String owner = cluster.ownerOf(store.getKey());
+            if (!owner.equals(store.getValue())) {
+                check(owner.equals("node-3"), store.getKey() + " moved from " + store.getValue() + " to " + owner);
+                moved++;
+            }
+        }
+        cluster.shutdown();
+        check(moved > 0 && moved < before.size(), "expected some stores to move to node-3, moved " + moved);
+        System.out.println("Adding a node only moves stores to it (" + moved + " of " + before.size() + "): OK");
+    }
+
+    // Orders keep flowing while nodes join, yet no store is ever handled by two threads at once
+    private static void checkStoreIsNeverProcessedByTwoPartitions() throws Exception {
+        StoreCluster cluster = new StoreCluster();
+        cluster.addNode("node-1");
+        Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger nextOrder = new AtomicInteger();
+
+        Thread rebalancer = new Thread(() -> {
+            for (int node = 2; node <= 4; node++) {
+                sleep(20);
+                cluster.addNode("node-" + node);
+            }
+        });
+        rebalancer.start();
+        runConcurrently(3_000, () -> {
+            Order order = new Order(DeliveryMethod.PICKUP);
+            order.setPickupLocation("store-" + nextOrder.incrementAndGet() % 20);
+            return cluster.submit(order, o -> {
+                AtomicInteger running = inFlight.computeIfAbsent(o.getStoreKey(), store -> new AtomicInteger());
+                if (running.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                o.processOrder();
+                sleep(1);
+                running.decrementAndGet();
+                processed.incrementAndGet();
+            }).get();
+        });
+        rebalancer.join();
+        cluster.shutdown();
+
+        check(overlaps.get() == 0, overlaps.get() + " orders ran while another order of the same store was running");
+        check(processed.get() == 3_000, "expected 3000 processed orders, got " + processed.get());
+        System.out.println("Store never processed by two partitions during rebalancing: OK");
+    }
+
+    // A busy partition does not hold up addNode, and moved stores still see their orders in sequence
+    private static void checkAddingNodeDoesNotWaitForBusyPartitions() throws Exception {
+        StoreCluster cluster = new StoreCluster();
+        cluster.addNode("node-1");
+        CountDownLatch slowOrderDone = new CountDownLatch(1);
+        Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+        List<Future<?>> results = new ArrayList<>();
+
+        // node-1 is stuck on a slow order while the first order of every store queues up behind it
+        cluster.submit(pickupOrder("slow-store"), order -> await(slowOrderDone));
+        for (int i = 0; i < 50; i++) {
+            results.add(cluster.submit(pickupOrder("store-" + i), order -> record(processed, order, 1)));
+        }
+
+        long started = System.nanoTime();
+        cluster.addNode("node-2");
+        long addNodeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        List<String> moved = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String store = "store-" + i;
+            if (cluster.ownerOf(store).equals("node-2")) {
+                moved.add(store);
+            }
+            results.add(cluster.submit(pickupOrder(store), order -> record(processed, order, 2)));
+        }
+        sleep(50);
+        boolean movedStoreRanEarly = false;
+        for (String store : moved) {
+            movedStoreRanEarly |= processed.containsKey(store);
+        }
+
+        slowOrderDone.countDown();
+        for (Future<?> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        cluster.shutdown();
+
+        check(addNodeMillis < 1_000, "addNode waited " + addNodeMillis + " ms for a busy partition");
+        check(!moved.isEmpty(), "expected some stores to move to node-2");
+        check(!movedStoreRanEarly, "a moved store was processed by node-2 before node-1 finished its queue");
+        for (Map.Entry<String, List<Integer>> store : processed.entrySet()) {
+            check(store.getValue().equals(Arrays.asList(1, 2)), store.getKey() + " processed out of order: " + store.getValue());
+        }
+        check(processed.size() == 50, "expected 50 stores processed, got " + processed.size());
+        System.out.println("Adding a node does not wait for busy partitions: OK");
+    }
+
+    private static Order pickupOrder(String store) {
+        Order order = new Order(DeliveryMethod.PICKUP);
+        order.setPickupLocation(store);
+        return order;
+    }
+
+    private static void record(Map<String, List<Integer>> processed, Order order, int sequence) {
+        processed.computeIfAbsent(order.getStoreKey(), store -> Collections.synchronizedList(new ArrayList<>())).add(sequence);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Concurrent reservations never take more units than are in stock
+    private static void checkInventoryIsNeverOversold() throws Exception {
+        Inventory inventory = new Inventory(5, 60_000);
+        inventory.addStock(IceCreamFlavor.COOKIE_DOUGH, 100);
+        inventory.addStock(Topping.NUTS, 1_000);
+        List<IceCreamCombination> order = Collections.singletonList(new IceCreamCombinationBuilder("Cookie Crunch")
+                .withFlavor(IceCreamFlavor.COOKIE_DOUGH)
+                .withTopping(Topping.NUTS)
+                .build());
+        AtomicInteger reserved = new AtomicInteger();
+
+        runConcurrently(10_000, () -> {
+            if (inventory.reserve(order) != null) {
+                reserved.incrementAndGet();
+            }
+            check(inventory.getStock(IceCreamFlavor.COOKIE_DOUGH) >= 0, "cookie dough stock went negative");
+            return null;
+        });
+
+        check(reserved.get() == 100, "expected 100 reservations, got " + reserved.get());
+        check(inventory.getStock(IceCreamFlavor.COOKIE_DOUGH) == 0, "cookie dough left: " + inventory.getStock(IceCreamFlavor.COOKIE_DOUGH));
+        check(inventory.getStock(Topping.NUTS) == 900, "nuts left: " + inventory.getStock(Topping.NUTS));
+        check(rejects(() -> inventory.addStock(IceCreamFlavor.COOKIE_DOUGH, -1)), "negative stock was accepted");
+        check(inventory.getStock(IceCreamFlavor.COOKIE_DOUGH) == 0, "negative stock changed the counter");
+        System.out.println("Inventory never oversold: OK");
+    }
+
+    // Nutty orders that roll back (nuts run out) race plain orders. Vanilla covers every plain order, so none
+    // may be turned away by another order's rollback, and the dip below the threshold is always reported.
+    private static void checkLowStockAlertSurvivesRollbacks() throws Exception {
+        List<IceCreamCombination> plain = Collections.singletonList(new IceCreamCombinationBuilder("Plain")
+                .withFlavor(IceCreamFlavor.VANILLA)
+                .build());
+        IceCreamCombination nuttyScoop = new IceCreamCombinationBuilder("Nutty")
+                .withFlavor(IceCreamFlavor.VANILLA)
+                .withTopping(Topping.NUTS)
+                .build();
+        List<IceCreamCombination> withNuts = Arrays.asList(nuttyScoop, nuttyScoop);
+
+        for (int trial = 0; trial < 500; trial++) {
+            Inventory inventory = new Inventory(5, 60_000);
+            inventory.addStock(IceCreamFlavor.VANILLA, 20);
+            inventory.addStock(Topping.NUTS, 4);
+            AtomicInteger alerts = new AtomicInteger();
+            AtomicInteger plainRejected = new AtomicInteger();
+            AtomicInteger nextOrder = new AtomicInteger();
+
+            // 16 plain and 112 two-scoop nutty orders: vanilla covers all plain orders plus the 2 nutty ones nuts allow
+            runConcurrently(128, () -> {
+                boolean isPlain = nextOrder.incrementAndGet() % 8 == 0;
+                InventoryReservation reservation = inventory.reserve(isPlain ? plain : withNuts);
+                if (reservation != null) {
+                    alerts.addAndGet(reservation.getLowStockAlerts().size());
+                } else if (isPlain) {
+                    plainRejected.incrementAndGet();
+                }
+                return null;
+            });
+
+            check(plainRejected.get() == 0, plainRejected.get() + " plain orders rejected with vanilla in stock in trial " + trial);
+            check(inventory.getStock(IceCreamFlavor.VANILLA) == 0, "vanilla left: " + inventory.getStock(IceCreamFlavor.VANILLA));
+            check(inventory.getStock(Topping.NUTS) == 0, "nuts left: " + inventory.getStock(Topping.NUTS));
+            check(alerts.get() >= 1, "no low-stock alert in trial " + trial);
+        }
+        System.out.println("Low-stock alert survives rollbacks: OK");
+    }
+
+    private static void checkExpiredReservationIsNotCommitted() {
+        Inventory inventory = new Inventory(0, 1);
+        inventory.addStock(IceCreamFlavor.MINT_CHOCOLATE, 1);
+        InventoryReservation reservation = inventory.reserve(Collections.singletonList(
+                new IceCreamCombinationBuilder("Mint").withFlavor(IceCreamFlavor.MINT_CHOCOLATE).build()));
+        sleep(20);
+
+        check(!inventory.commit(reservation), "an expired reservation was committed");
+        check(inventory.getStock(IceCreamFlavor.MINT_CHOCOLATE) == 1, "expired stock was not returned");
+        System.out.println("Expired reservation is not committed: OK");
+    }
+
+    private static void checkSweeperReturnsExpiredStock() {
+        Inventory inventory = new Inventory(0, 10);
+        inventory.addStock(IceCreamFlavor.STRAWBERRY, 1);
+        inventory.startExpirySweeper(5);
+        try {
+            check(inventory.reserve(Collections.singletonList(
+                    new IceCreamCombinationBuilder("Berry").withFlavor(IceCreamFlavor.STRAWBERRY).build())) != null,
+                    "reservation failed");
+            long deadline = System.currentTimeMillis() + 2_000;
+            while (inventory.getStock(IceCreamFlavor.STRAWBERRY) == 0 && System.currentTimeMillis() < deadline) {
+                sleep(5);
+            }
+            check(inventory.getStock(IceCreamFlavor.STRAWBERRY) == 1, "sweeper did not return expired stock");
+        } finally {
+            inventory.shutdown();
+        }
+        System.out.println("Sweeper returns expired stock: OK");
+    }
+
+    // Payment strategy standing in for a gateway, identified by its own instrument id
+    private static class TestGateway implements PaymentStrategy {
+        private final String instrument;
+        private final DoubleConsumer gateway;
+
+        TestGateway(String instrument, DoubleConsumer gateway) {
+            this.instrument = instrument;
+            this.gateway = gateway;
+        }
+
+        @Override
+        public void pay(double amount) {
+            gateway.accept(amount);
+        }
+
+        @Override
+        public String getPaymentInstrument() {
+            return "Test:" + instrument;
+        }
+    }
+
+    // Starts all tasks together on a shared pool and rethrows the first failure
+    private static void runConcurrently(int tasks, Callable<?> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            Future<?>[] results = new Future<?>[tasks];
+            for (int i = 0; i < tasks; i++) {
+                results[i] = executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                });
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}